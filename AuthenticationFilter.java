@@ -10,6 +10,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
@@ -22,6 +23,12 @@ import javax.servlet.FilterChain;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
 import java.util.HashMap;
 
 @Component
@@ -34,7 +41,9 @@ public class AuthenticationFilter extends OncePerRequestFilter {
     public static final String OPTIONS = "OPTIONS";
     public static final String ORIGIN = "Origin";
     public static final String SCOPE = "scope";
+    public static final String EXP = "exp";
     public static final String HLFUS = "HLFUS";
+    private static final String PING_CACHE_PREFIX = "ping:";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthenticationFilter.class);
     private static final TypeReference<HashMap<String, Object>> valueTypeRef = new TypeReference<>() {};
@@ -48,43 +57,125 @@ public class AuthenticationFilter extends OncePerRequestFilter {
     @Value("${application.config.ping.pingurl}")
     private String pingUrl;
 
+    @Value("${application.config.ping.cachettlseconds:60}")
+    private long pingCacheTtlSeconds;
+
+    // Ping results are shared between replicas so each token is introspected once, not once per node
+    @Autowired
+    private TwoLevelTokenCache tokenCache;
+
+    @Autowired
+    private RequestTracer requestTracer;
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws IOException {
         final String authorizationHeaderValue = request.getHeader(AUTHORIZATION);
 
-        if (authorizationHeaderValue != null && authorizationHeaderValue.startsWith(BEARER)) {
-            String token = authorizationHeaderValue.substring(7); // Remove "Bearer "
+        // The trace covers the whole request, including token acquisition and the pricing call further down the chain
+        requestTracer.startTrace(request.getHeader(RequestTracer.TRACEPARENT));
+        try {
+            if (authorizationHeaderValue != null && authorizationHeaderValue.startsWith(BEARER)) {
+                String token = authorizationHeaderValue.substring(7); // Remove "Bearer "
+
+                LOGGER.info(String.format("$$$ filter.doFilter token = %s.", token));
+
+                try (RequestTracer.Span span = requestTracer.startSpan("filter.validate")) {
+                    try {
+                        // Ping response from the near/shared cache, Ping service is only called on a miss
+                        String pingResponse = tokenCache.get(pingCacheKey(token), () -> introspect(token));
+
+                        // Validate response and set security context
+                        validateAndSetContext(request, response, pingResponse);
+                    } catch (IOException | RuntimeException e) {
+                        span.setError(e);
+                        throw e;
+                    }
+                }
+
+                filterChain.doFilter(request, response);
+            } else {
+                LOGGER.info("Throwing Unauthorized exception as there is no token in header");
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized");
+            }
+        } finally {
+            requestTracer.endTrace();
+        }
+    }
 
-            LOGGER.info(String.format("$$$ filter.doFilter token = %s.", token));
+    private TwoLevelTokenCache.Entry introspect(String token) {
+        MultiValueMap<String, String> requestBody = new LinkedMultiValueMap<>();
+        requestBody.add(CLIENT_ID, clientId);
 
-            MultiValueMap<String, String> requestBody = new LinkedMultiValueMap<>();
-            requestBody.add(CLIENT_ID, clientId);
+        // Create PingRequest object
+        PingRequest pingRequest = new PingRequest();
+        pingRequest.setToken(token);
+        pingRequest.setUrl(pingUrl);
 
-            // Create PingRequest object
-            PingRequest pingRequest = new PingRequest();
-            pingRequest.setToken(token);
-            pingRequest.setUrl(pingUrl);
+        try (RequestTracer.Span span = requestTracer.startSpan("ping.introspect")) {
+            HttpHeaders headers = new HttpHeaders();
+            String traceparent = requestTracer.traceparent();
+            if (traceparent != null) {
+                headers.add(RequestTracer.TRACEPARENT, traceparent);
+            }
 
             // Perform POST request to Ping service
-            ResponseEntity<String> result = restTemplate.postForEntity(pingRequest.getUrl(), new HttpEntity<>(requestBody), String.class);
+            ResponseEntity<String> result = restTemplate.postForEntity(pingRequest.getUrl(), new HttpEntity<>(requestBody, headers), String.class);
 
-            // Validate response and set security context
-            validateAndSetContext(request, response, result);
+            return TwoLevelTokenCache.Entry.of(result.getBody(), pingCacheTtl(result.getBody()));
+        }
+    }
 
-            filterChain.doFilter(request, response);
-        } else {
-            LOGGER.info("Throwing Unauthorized exception as there is no token in header");
-            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized");
+    // Only responses that pass validation are cached, and never beyond the token's own exp claim
+    Duration pingCacheTtl(String pingResponse) {
+        HashMap<String, Object> userinfo;
+        try {
+            userinfo = new ObjectMapper().readValue(pingResponse, valueTypeRef);
+        } catch (IOException | IllegalArgumentException e) {
+            return Duration.ZERO;
+        }
+
+        if (!isAuthorized(userinfo)) {
+            return Duration.ZERO;
+        }
+
+        Duration ttl = Duration.ofSeconds(pingCacheTtlSeconds);
+        Object exp = userinfo.get(EXP);
+        if (exp != null) {
+            long expEpochSeconds;
+            try {
+                expEpochSeconds = exp instanceof Number ? ((Number) exp).longValue() : Long.parseLong(exp.toString());
+            } catch (NumberFormatException e) {
+                return Duration.ZERO;
+            }
+            Duration untilExpiry = Duration.between(Instant.now(), Instant.ofEpochSecond(expEpochSeconds));
+            if (untilExpiry.compareTo(ttl) < 0) {
+                ttl = untilExpiry;
+            }
+        }
+        return ttl.isNegative() ? Duration.ZERO : ttl;
+    }
+
+    static boolean isAuthorized(HashMap<String, Object> userinfo) {
+        return userinfo.get(SUB) != null && userinfo.get(SCOPE) != null && userinfo.get(SCOPE).toString().contains(HLFUS);
+    }
+
+    // Raw bearer tokens are never written to the shared cache, only their SHA-256 hash
+    private String pingCacheKey(String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return PING_CACHE_PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
         }
     }
 
-    private void validateAndSetContext(HttpServletRequest request, HttpServletResponse response, ResponseEntity<String> result) throws IOException {
+    private void validateAndSetContext(HttpServletRequest request, HttpServletResponse response, String pingResponse) throws IOException {
         ObjectMapper mapper = new ObjectMapper();
-        HashMap<String, Object> userinfo = mapper.readValue(result.getBody(), valueTypeRef);
+        HashMap<String, Object> userinfo = mapper.readValue(pingResponse, valueTypeRef);
 
         LOGGER.info(String.format("Ping request response = %s.", userinfo));
 
-        if (userinfo.get(SUB) == null || !userinfo.get(SCOPE).toString().contains(HLFUS)) {
+        if (!isAuthorized(userinfo)) {
             LOGGER.info("Throwing Unauthorized exception as invalid token is received.");
             response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized");
         }
@@ -0,0 +1,81 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AuthenticationFilterTest {
+
+    private AuthenticationFilter authenticationFilter;
+
+    @Before
+    public void setUp() {
+        authenticationFilter = new AuthenticationFilter();
+        ReflectionTestUtils.setField(authenticationFilter, "pingCacheTtlSeconds", 60L);
+    }
+
+    private static String pingResponse(String sub, String scope, Long exp) throws Exception {
+        Map<String, Object> userinfo = new HashMap<>();
+        userinfo.put("sub", sub);
+        userinfo.put("scope", scope);
+        userinfo.put("exp", exp);
+        return new ObjectMapper().writeValueAsString(userinfo);
+    }
+
+    @Test
+    public void testPingCacheTtl_ValidTokenWithoutExp() throws Exception {
+        assertEquals(Duration.ofSeconds(60), authenticationFilter.pingCacheTtl(pingResponse("user1", "openid HLFUS", null)));
+    }
+
+    @Test
+    public void testPingCacheTtl_FarExpiryUsesConfiguredTtl() throws Exception {
+        long exp = Instant.now().plusSeconds(3600).getEpochSecond();
+
+        assertEquals(Duration.ofSeconds(60), authenticationFilter.pingCacheTtl(pingResponse("user1", "HLFUS", exp)));
+    }
+
+    @Test
+    public void testPingCacheTtl_CloseExpiryCapsTtl() throws Exception {
+        long exp = Instant.now().plusSeconds(10).getEpochSecond();
+
+        Duration ttl = authenticationFilter.pingCacheTtl(pingResponse("user1", "HLFUS", exp));
+
+        assertTrue(ttl.compareTo(Duration.ZERO) > 0);
+        assertTrue(ttl.compareTo(Duration.ofSeconds(10)) <= 0);
+    }
+
+    @Test
+    public void testPingCacheTtl_ExpiredTokenIsNotCached() throws Exception {
+        long exp = Instant.now().minusSeconds(5).getEpochSecond();
+
+        assertEquals(Duration.ZERO, authenticationFilter.pingCacheTtl(pingResponse("user1", "HLFUS", exp)));
+    }
+
+    @Test
+    public void testPingCacheTtl_RejectedResponsesAreNotCached() throws Exception {
+        assertEquals(Duration.ZERO, authenticationFilter.pingCacheTtl(pingResponse(null, "HLFUS", null)));
+        assertEquals(Duration.ZERO, authenticationFilter.pingCacheTtl(pingResponse("user1", "openid", null)));
+        assertEquals(Duration.ZERO, authenticationFilter.pingCacheTtl(pingResponse("user1", null, null)));
+        assertEquals(Duration.ZERO, authenticationFilter.pingCacheTtl("not json"));
+        assertEquals(Duration.ZERO, authenticationFilter.pingCacheTtl(null));
+    }
+
+    @Test
+    public void testPingCacheTtl_RejectedResponseNeverReachesSharedStore() throws Exception {
+        InMemorySharedTokenStore sharedStore = new InMemorySharedTokenStore();
+        TwoLevelTokenCache tokenCache = new TwoLevelTokenCache(sharedStore, 30, 5, 100);
+        String rejected = pingResponse(null, "HLFUS", null);
+
+        tokenCache.get("ping:abc", () -> TwoLevelTokenCache.Entry.of(rejected, authenticationFilter.pingCacheTtl(rejected)));
+
+        assertNull(sharedStore.get("ping:abc"));
+    }
+}
@@ -8,9 +8,11 @@ and then process the XML response received from the service to build and return
 
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.client.HttpStatusCodeException;
 
 import javax.annotation.PostConstruct;
 import java.util.Date;
@@ -37,67 +39,81 @@ public class EaiPricingInterface {
     @Autowired
     private SoapServiceInvoker soapServiceInvoker;
 
+    @Autowired
+    private RequestTracer requestTracer;
+
     @PostConstruct
     private void init() {
         this.xmlUtil = XMLUtil.getInstance();
     }
 
     public EaiPricingResponse getRate(EaiPricingRequest_Celws request) throws Exception {
-        StringBuffer sb = xmlUtil.startXmlDocument(XMLHDR);
-        xmlUtil.openElement(sb, "EAIPricingRequest");
-
-        // Start XML request information
-        xmlUtil.openElement(sb, "Header");
-        xmlUtil.addElement(sb, "CorrelationId", request.getAccountNumber());
-        xmlUtil.addElement(sb, "requestorID", request.getRequestorId());
-        xmlUtil.addElement(sb, "CreatorId", "CLEAHEQ");
-        xmlUtil.addElement(sb, "AuthorizationId", "NONE");
-        xmlUtil.addElement(sb, "ApplicationCode", "BT");
-        xmlUtil.addElement(sb, "ChannelCode", "INT");
-        xmlUtil.addElement(sb, "AccountingUnit");
-        xmlUtil.addElement(sb, "CreationTimestamp", new Date(), "yyyyMMddHHmmssSSS");
-        xmlUtil.addElement(sb, "MessageType", "RQST");
-        xmlUtil.addElement(sb, "Timeout", 30000);
-        xmlUtil.closeElement(sb, "Header");
-
-        // Start Body of Document
-        xmlUtil.openElement(sb, "Body");
-        xmlUtil.addElement(sb, "AmortizationTerm", request.getTerm());
-        xmlUtil.addElement(sb, "AmortizationType", request.getAmortizationType());
-        xmlUtil.addElement(sb, "AutoPay", request.isAutopay());
-        xmlUtil.addElement(sb, "Employee", request.isEmployee());
-        xmlUtil.addElement(sb, "Premier", request.isPremier());
-        xmlUtil.addElement(sb, "CLTV", request.getCltv());
-        xmlUtil.addElement(sb, "CreditGrade", request.getCreditGrade());
-        xmlUtil.addElement(sb, "Fico1", request.getFico1());
-        xmlUtil.addElement(sb, "Fico2", request.getFico2());
-        xmlUtil.addElement(sb, "FicoScore", request.getFicoScore());
-        xmlUtil.addElement(sb, "LienPosition", request.getLienPosition());
-
-        if (request.getNoteAmount() >= 0.01f && request.getNoteAmount() < 1.0f) {
-            xmlUtil.addElement(sb, "LoanAmount", 1);
-        } else {
-            xmlUtil.addElement(sb, "LoanAmount", StringUtil.toInt(request.getNoteAmount()));
-        }
+        // Same value as the CorrelationId in the XML header, so exported traces can be matched with EAI logs
+        requestTracer.setCorrelationId(request.getAccountNumber());
 
-        xmlUtil.addElement(sb, "LoanClass", request.getLoanClass());
-        xmlUtil.addElement(sb, "Occupancy", request.getOccupancy());
-        xmlUtil.addElement(sb, "PrePayYears", request.getPrePayYears());
-        xmlUtil.addElement(sb, "Product", request.getProduct());
-        xmlUtil.addElement(sb, "ProductFeature", request.getProductFeature());
-        xmlUtil.addElement(sb, "PropertyType", request.getPropertyType());
-        xmlUtil.addElement(sb, "QuoteDate", request.getQuoteDate(), "yyyyMMddHHmmssSSS");
-        xmlUtil.addElement(sb, "PropertyState", request.getPropertyState());
-        xmlUtil.addElement(sb, "PricingState", request.getPricingState());
-        xmlUtil.addElement(sb, "ChannelSource", request.getChannelSource());
-        xmlUtil.addElement(sb, "MarketSource", request.getMarketSource());
-
-        // P0506594 MarginAdjuster and Rate Adjuster updated
-        xmlUtil.addElement(sb, "MiscMarginAdjuster", "");
-        xmlUtil.addElement(sb, "MiscRateAdjuster", request.getRateAdjusters());
-        xmlUtil.addElement(sb, "CallerId", "42");
-        xmlUtil.closeElement(sb, "Body");
-        xmlUtil.closeElement(sb, "EAIPricingRequest");
+        StringBuffer sb;
+        try (RequestTracer.Span span = requestTracer.startSpan("eai.buildXml")) {
+            try {
+                sb = xmlUtil.startXmlDocument(XMLHDR);
+                xmlUtil.openElement(sb, "EAIPricingRequest");
+
+                // Start XML request information
+                xmlUtil.openElement(sb, "Header");
+                xmlUtil.addElement(sb, "CorrelationId", request.getAccountNumber());
+                xmlUtil.addElement(sb, "requestorID", request.getRequestorId());
+                xmlUtil.addElement(sb, "CreatorId", "CLEAHEQ");
+                xmlUtil.addElement(sb, "AuthorizationId", "NONE");
+                xmlUtil.addElement(sb, "ApplicationCode", "BT");
+                xmlUtil.addElement(sb, "ChannelCode", "INT");
+                xmlUtil.addElement(sb, "AccountingUnit");
+                xmlUtil.addElement(sb, "CreationTimestamp", new Date(), "yyyyMMddHHmmssSSS");
+                xmlUtil.addElement(sb, "MessageType", "RQST");
+                xmlUtil.addElement(sb, "Timeout", 30000);
+                xmlUtil.closeElement(sb, "Header");
+
+                // Start Body of Document
+                xmlUtil.openElement(sb, "Body");
+                xmlUtil.addElement(sb, "AmortizationTerm", request.getTerm());
+                xmlUtil.addElement(sb, "AmortizationType", request.getAmortizationType());
+                xmlUtil.addElement(sb, "AutoPay", request.isAutopay());
+                xmlUtil.addElement(sb, "Employee", request.isEmployee());
+                xmlUtil.addElement(sb, "Premier", request.isPremier());
+                xmlUtil.addElement(sb, "CLTV", request.getCltv());
+                xmlUtil.addElement(sb, "CreditGrade", request.getCreditGrade());
+                xmlUtil.addElement(sb, "Fico1", request.getFico1());
+                xmlUtil.addElement(sb, "Fico2", request.getFico2());
+                xmlUtil.addElement(sb, "FicoScore", request.getFicoScore());
+                xmlUtil.addElement(sb, "LienPosition", request.getLienPosition());
+
+                if (request.getNoteAmount() >= 0.01f && request.getNoteAmount() < 1.0f) {
+                    xmlUtil.addElement(sb, "LoanAmount", 1);
+                } else {
+                    xmlUtil.addElement(sb, "LoanAmount", StringUtil.toInt(request.getNoteAmount()));
+                }
+
+                xmlUtil.addElement(sb, "LoanClass", request.getLoanClass());
+                xmlUtil.addElement(sb, "Occupancy", request.getOccupancy());
+                xmlUtil.addElement(sb, "PrePayYears", request.getPrePayYears());
+                xmlUtil.addElement(sb, "Product", request.getProduct());
+                xmlUtil.addElement(sb, "ProductFeature", request.getProductFeature());
+                xmlUtil.addElement(sb, "PropertyType", request.getPropertyType());
+                xmlUtil.addElement(sb, "QuoteDate", request.getQuoteDate(), "yyyyMMddHHmmssSSS");
+                xmlUtil.addElement(sb, "PropertyState", request.getPropertyState());
+                xmlUtil.addElement(sb, "PricingState", request.getPricingState());
+                xmlUtil.addElement(sb, "ChannelSource", request.getChannelSource());
+                xmlUtil.addElement(sb, "MarketSource", request.getMarketSource());
+
+                // P0506594 MarginAdjuster and Rate Adjuster updated
+                xmlUtil.addElement(sb, "MiscMarginAdjuster", "");
+                xmlUtil.addElement(sb, "MiscRateAdjuster", request.getRateAdjusters());
+                xmlUtil.addElement(sb, "CallerId", "42");
+                xmlUtil.closeElement(sb, "Body");
+                xmlUtil.closeElement(sb, "EAIPricingRequest");
+            } catch (RuntimeException e) {
+                span.setError(e);
+                throw e;
+            }
+        }
 
         if (request.isCaptureXml()) {
             request.setXml(sb.toString());
@@ -107,21 +123,44 @@ public class EaiPricingInterface {
         String eaiURL = StringUtils.trimToNull(control.getControlValue(ProcessControlConstants.EAI_URL));
         if (eaiURL != null) {
             log.debug("R2.19:: EaiPricingInterface: URL in getRate: EaiPricingRequest_Celws:: {}", eaiURL);
+            String accessToken = null;
             try {
-                String result = soapServiceInvoker.invokeService(eaiURL, sb.toString(), new Properties() {
-                    {
-                        put(CleaConstants.CONTENT_TYPE, "text/xml");
-                        put("Authorization", getBearerToken());
+                accessToken = oAuthenticationService.getOathAccessToken();
+                String bearerToken = getBearerToken(accessToken);
+                String result;
+                try (RequestTracer.Span span = requestTracer.startSpan("eai.call")) {
+                    String traceparent = requestTracer.traceparent();
+                    try {
+                        result = soapServiceInvoker.invokeService(eaiURL, sb.toString(), new Properties() {
+                            {
+                                put(CleaConstants.CONTENT_TYPE, "text/xml");
+                                put("Authorization", bearerToken);
+                                if (traceparent != null) {
+                                    put(RequestTracer.TRACEPARENT, traceparent);
+                                }
+                            }
+                        });
+                    } catch (Exception e) {
+                        span.setError(e);
+                        throw e;
                     }
-                });
+                }
 
-                result = StringUtil.removeString(result, "xmlns=\"http://HEQAPPAZPHX01.wellsfargo.com/\"");
+                EaiPricingResponse rsp;
+                try (RequestTracer.Span span = requestTracer.startSpan("eai.parse")) {
+                    try {
+                        result = StringUtil.removeString(result, "xmlns=\"http://HEQAPPAZPHX01.wellsfargo.com/\"");
 
-                Document doc = xmlUtil.getXMLDocument(result);
+                        Document doc = xmlUtil.getXMLDocument(result);
 
-                log.info("EaiPricingInterface: CELWS Pricing Response: {}", doc.asXML());
+                        log.info("EaiPricingInterface: CELWS Pricing Response: {}", doc.asXML());
 
-                EaiPricingResponse rsp = buildResponse(doc);
+                        rsp = buildResponse(doc);
+                    } catch (Exception e) {
+                        span.setError(e);
+                        throw e;
+                    }
+                }
 
                 if (request.isCaptureXml() && rsp != null) {
                     rsp.setXml(result);
@@ -131,6 +170,10 @@ public class EaiPricingInterface {
 
             } catch (Exception e) {
                 log.error("EaiPricingInterface: Exception in getRate: EaiPricingRequest_Celws::", e);
+                if (accessToken != null && isUnauthorized(e)) {
+                    // Token was revoked or expired early, drop it on all nodes so the next call fetches a new one
+                    oAuthenticationService.invalidateAccessToken(accessToken);
+                }
                 EaiPricingResponse err = new EaiPricingResponse();
                 err.setStatusMessage(e.getMessage());
                 return err;
@@ -142,7 +185,17 @@ public class EaiPricingInterface {
         }
     }
 
-    private String getBearerToken() {
-        return "Bearer " + oAuthenticationService.getOathAccessToken();
+    private String getBearerToken(String accessToken) {
+        return "Bearer " + accessToken;
+    }
+
+    static boolean isUnauthorized(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpStatusCodeException
+                    && ((HttpStatusCodeException) cause).getRawStatusCode() == HttpStatus.UNAUTHORIZED.value()) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,80 @@
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EaiPricingInterfaceTest {
+
+    @Mock
+    private ProcessControlHandler control;
+    @Mock
+    private OAuthenticationService oAuthenticationService;
+    @Mock
+    private SoapServiceInvoker soapServiceInvoker;
+    @Mock
+    private XMLUtil xmlUtil;
+
+    @InjectMocks
+    private EaiPricingInterface eaiPricingInterface;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(eaiPricingInterface, "xmlUtil", xmlUtil);
+        ReflectionTestUtils.setField(eaiPricingInterface, "requestTracer", new RequestTracer(2000));
+
+        when(xmlUtil.startXmlDocument(anyString())).thenReturn(new StringBuffer());
+        when(control.getControlValue(ProcessControlConstants.EAI_URL)).thenReturn("http://eai");
+        when(oAuthenticationService.getOathAccessToken()).thenReturn("rejectedToken");
+    }
+
+    @Test
+    public void testIsUnauthorized_Wrapped401() {
+        Exception e = new RuntimeException("EAI call failed", new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
+
+        assertTrue(EaiPricingInterface.isUnauthorized(e));
+    }
+
+    @Test
+    public void testIsUnauthorized_OtherErrors() {
+        assertFalse(EaiPricingInterface.isUnauthorized(new HttpClientErrorException(HttpStatus.FORBIDDEN)));
+        assertFalse(EaiPricingInterface.isUnauthorized(new RuntimeException(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR))));
+        assertFalse(EaiPricingInterface.isUnauthorized(new RuntimeException("timeout")));
+    }
+
+    @Test
+    public void testGetRate_401InvalidatesRejectedToken() throws Exception {
+        when(soapServiceInvoker.invokeService(anyString(), anyString(), any(Properties.class)))
+                .thenThrow(new RuntimeException("EAI call failed", new HttpClientErrorException(HttpStatus.UNAUTHORIZED)));
+
+        eaiPricingInterface.getRate(mock(EaiPricingRequest_Celws.class));
+
+        verify(oAuthenticationService).invalidateAccessToken("rejectedToken");
+    }
+
+    @Test
+    public void testGetRate_OtherFailureKeepsToken() throws Exception {
+        when(soapServiceInvoker.invokeService(anyString(), anyString(), any(Properties.class)))
+                .thenThrow(new RuntimeException("EAI call failed", new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR)));
+
+        eaiPricingInterface.getRate(mock(EaiPricingRequest_Celws.class));
+
+        verify(oAuthenticationService, never()).invalidateAccessToken(anyString());
+    }
+}
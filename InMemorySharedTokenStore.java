@@ -0,0 +1,86 @@
+/*
+ * In-memory SharedTokenStore used in tests in place of Redis.
+ * Several TwoLevelTokenCache instances built on the same store behave like replicas sharing one Redis.
+ */
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+public class InMemorySharedTokenStore implements SharedTokenStore {
+
+    private final Map<String, String> values = new ConcurrentHashMap<>();
+    private final Map<String, Instant> expirations = new ConcurrentHashMap<>();
+    private final Map<String, List<Consumer<String>>> listeners = new ConcurrentHashMap<>();
+
+    @Override
+    public synchronized String get(String key) {
+        evictIfExpired(key);
+        return values.get(key);
+    }
+
+    @Override
+    public synchronized Duration ttl(String key) {
+        evictIfExpired(key);
+        Instant expiresAt = expirations.get(key);
+        if (expiresAt == null) {
+            return Duration.ZERO;
+        }
+        return Duration.between(Instant.now(), expiresAt);
+    }
+
+    @Override
+    public synchronized void set(String key, String value, Duration ttl) {
+        values.put(key, value);
+        expirations.put(key, Instant.now().plus(ttl));
+    }
+
+    @Override
+    public synchronized boolean setIfAbsent(String key, String value, Duration ttl) {
+        evictIfExpired(key);
+        if (values.containsKey(key)) {
+            return false;
+        }
+        set(key, value, ttl);
+        return true;
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+        values.remove(key);
+        expirations.remove(key);
+    }
+
+    @Override
+    public synchronized boolean deleteIfEquals(String key, String expectedValue) {
+        evictIfExpired(key);
+        if (!expectedValue.equals(values.get(key))) {
+            return false;
+        }
+        delete(key);
+        return true;
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        for (Consumer<String> listener : listeners.getOrDefault(channel, List.of())) {
+            listener.accept(message);
+        }
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        listeners.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    private void evictIfExpired(String key) {
+        Instant expiresAt = expirations.get(key);
+        if (expiresAt != null && !Instant.now().isBefore(expiresAt)) {
+            delete(key);
+        }
+    }
+}
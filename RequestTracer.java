@@ -0,0 +1,248 @@
+/*
+ * Request scoped tracing for the pricing flow: AuthenticationFilter -> OAuthenticationService -> EaiPricingInterface.
+ * AuthenticationFilter starts a trace per request (continuing an incoming W3C traceparent header if present)
+ * with a root "request" span, each stage opens a child span, and outbound Ping / OAuth / EAI calls carry
+ * a traceparent header for the current span.
+ * The trace is tied to the CorrelationId sent in the EAI XML header.
+ * Sampling is tail based: when the request ends, the whole trace is written to the TRACE_EXPORT log
+ * only if it was slower than the threshold or a span failed, otherwise it is dropped.
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@Component
+public class RequestTracer {
+
+    public static final String TRACEPARENT = "traceparent";
+    public static final String MDC_TRACE_ID = "traceId";
+    public static final String MDC_CORRELATION_ID = "CorrelationId";
+    public static final String ROOT_SPAN_NAME = "request";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestTracer.class);
+    // Separate logger so the exported traces can be routed to their own appender / collector
+    private static final Logger EXPORT_LOGGER = LoggerFactory.getLogger("TRACE_EXPORT");
+
+    // W3C Trace Context: version-traceId-parentId-flags, lowercase hex only
+    private static final Pattern TRACEPARENT_PATTERN = Pattern.compile("^[0-9a-f]{2}-[0-9a-f]{32}-[0-9a-f]{16}-[0-9a-f]{2}$");
+    private static final String INVALID_VERSION = "ff";
+    private static final String SAMPLED_FLAGS = "01";
+    private static final String HEX_PADDING = "0000000000000000";
+
+    private static final Span NOOP_SPAN = new Span(null, null, null);
+
+    private final ThreadLocal<Trace> currentTrace = new ThreadLocal<>();
+    private final long slowThresholdMillis;
+
+    public RequestTracer(@Value("${application.config.tracing.slowthresholdmillis:2000}") long slowThresholdMillis) {
+        this.slowThresholdMillis = slowThresholdMillis;
+    }
+
+    public void startTrace(String incomingTraceparent) {
+        String traceId = null;
+        String parentSpanId = null;
+        String traceFlags = SAMPLED_FLAGS;
+
+        // e.g. 00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01, the caller's sampling flags are passed on as is
+        if (incomingTraceparent != null) {
+            String[] parts = incomingTraceparent.trim().split("-");
+            if (isValidTraceparent(incomingTraceparent.trim(), parts)) {
+                traceId = parts[1];
+                parentSpanId = parts[2];
+                traceFlags = parts[3];
+            } else {
+                LOGGER.info("Ignoring invalid traceparent header {}", incomingTraceparent);
+            }
+        }
+
+        Trace trace = new Trace(traceId != null ? traceId : randomTraceId(), traceFlags);
+        // Root span, so outbound calls made outside any stage still point at a span that is in the export
+        Span root = new Span(trace, ROOT_SPAN_NAME, parentSpanId);
+        trace.root = root;
+        trace.spans.add(root);
+        trace.activeSpans.push(root);
+        currentTrace.set(trace);
+        MDC.put(MDC_TRACE_ID, trace.traceId);
+    }
+
+    public void setCorrelationId(String correlationId) {
+        Trace trace = currentTrace.get();
+        if (trace != null && correlationId != null) {
+            trace.correlationId = correlationId;
+            MDC.put(MDC_CORRELATION_ID, correlationId);
+        }
+    }
+
+    // Use with try-with-resources, spans opened while another span is open become its children
+    public Span startSpan(String name) {
+        Trace trace = currentTrace.get();
+        if (trace == null) {
+            return NOOP_SPAN;
+        }
+        Span span = new Span(trace, name, currentSpan(trace).spanId);
+        trace.spans.add(span);
+        trace.activeSpans.push(span);
+        return span;
+    }
+
+    // Header value for outbound calls, null when no trace is active
+    public String traceparent() {
+        Trace trace = currentTrace.get();
+        if (trace == null) {
+            return null;
+        }
+        return "00-" + trace.traceId + "-" + currentSpan(trace).spanId + "-" + trace.traceFlags;
+    }
+
+    private static Span currentSpan(Trace trace) {
+        return trace.activeSpans.isEmpty() ? trace.root : trace.activeSpans.peek();
+    }
+
+    // Returns true if the trace was sampled and exported
+    public boolean endTrace() {
+        Trace trace = currentTrace.get();
+        currentTrace.remove();
+        MDC.remove(MDC_TRACE_ID);
+        MDC.remove(MDC_CORRELATION_ID);
+        if (trace == null) {
+            return false;
+        }
+
+        trace.root.close();
+        long durationMillis = trace.root.durationMillis();
+        boolean failed = trace.spans.stream().anyMatch(span -> span.error != null);
+        if (durationMillis < slowThresholdMillis && !failed) {
+            return false;
+        }
+
+        EXPORT_LOGGER.info(trace.export(durationMillis));
+        return true;
+    }
+
+    private static boolean isValidTraceparent(String traceparent, String[] parts) {
+        return TRACEPARENT_PATTERN.matcher(traceparent).matches()
+                && !INVALID_VERSION.equals(parts[0])
+                && !isAllZeros(parts[1])
+                && !isAllZeros(parts[2]);
+    }
+
+    private static boolean isAllZeros(String value) {
+        return value.chars().allMatch(c -> c == '0');
+    }
+
+    // Ids are built from random longs, this runs for every span of every request, sampled or not
+    private static String randomTraceId() {
+        return toHex(nonZeroRandomLong()) + toHex(ThreadLocalRandom.current().nextLong());
+    }
+
+    private static String randomSpanId() {
+        return toHex(nonZeroRandomLong());
+    }
+
+    private static long nonZeroRandomLong() {
+        long value;
+        do {
+            value = ThreadLocalRandom.current().nextLong();
+        } while (value == 0);
+        return value;
+    }
+
+    private static String toHex(long value) {
+        String hex = Long.toHexString(value);
+        return HEX_PADDING.substring(hex.length()) + hex;
+    }
+
+    // Inner class representing one request's trace
+    private static class Trace {
+        private final String traceId;
+        private final String traceFlags;
+        private final List<Span> spans = new ArrayList<>();
+        private final Deque<Span> activeSpans = new ArrayDeque<>();
+        private Span root;
+        private String correlationId;
+
+        Trace(String traceId, String traceFlags) {
+            this.traceId = traceId;
+            this.traceFlags = traceFlags;
+        }
+
+        String export(long durationMillis) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("traceId=").append(traceId)
+                    .append(" CorrelationId=").append(correlationId)
+                    .append(" durationMs=").append(durationMillis)
+                    .append(" spans=[");
+            for (int i = 0; i < spans.size(); i++) {
+                Span span = spans.get(i);
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append("{name=").append(span.name)
+                        .append(", spanId=").append(span.spanId)
+                        .append(", parentId=").append(span.parentSpanId)
+                        .append(", durationMs=").append(span.durationMillis());
+                if (span.error != null) {
+                    sb.append(", error=").append(span.error);
+                }
+                sb.append('}');
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    // One timed stage of a request, e.g. token acquisition or the upstream EAI call
+    public static class Span implements AutoCloseable {
+        private final Trace trace;
+        private final String name;
+        private final String spanId;
+        private final String parentSpanId;
+        private final long startNanos = System.nanoTime();
+        private long endNanos;
+        private String error;
+
+        private Span(Trace trace, String name, String parentSpanId) {
+            this.trace = trace;
+            this.name = name;
+            this.spanId = trace != null ? randomSpanId() : null;
+            this.parentSpanId = parentSpanId;
+        }
+
+        public String getSpanId() {
+            return spanId;
+        }
+
+        public String getParentSpanId() {
+            return parentSpanId;
+        }
+
+        public void setError(Throwable e) {
+            if (trace != null) {
+                this.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+            }
+        }
+
+        long durationMillis() {
+            long end = endNanos != 0 ? endNanos : System.nanoTime();
+            return TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+        }
+
+        @Override
+        public void close() {
+            if (trace != null && endNanos == 0) {
+                endNanos = System.nanoTime();
+                trace.activeSpans.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.MDC;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class RequestTracerTest {
+
+    private static final String INCOMING_TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+    private static final String INCOMING_TRACEPARENT = "00-" + INCOMING_TRACE_ID + "-00f067aa0ba902b7-01";
+
+    private RequestTracer requestTracer = new RequestTracer(2000);
+
+    @After
+    public void tearDown() {
+        requestTracer.endTrace();
+    }
+
+    @Test
+    public void testTraceparent_ContinuesIncomingTrace() {
+        requestTracer.startTrace(INCOMING_TRACEPARENT);
+
+        try (RequestTracer.Span span = requestTracer.startSpan("ping.introspect")) {
+            String[] parts = requestTracer.traceparent().split("-");
+            assertEquals(INCOMING_TRACE_ID, parts[1]);
+            assertEquals(16, parts[2].length());
+            assertFalse("00f067aa0ba902b7".equals(parts[2]));
+        }
+    }
+
+    @Test
+    public void testTraceparent_NestedSpansPointAtTheirParent() {
+        requestTracer.startTrace(INCOMING_TRACEPARENT);
+        String rootSpanId = requestTracer.traceparent().split("-")[2];
+
+        try (RequestTracer.Span outer = requestTracer.startSpan("oauth.token")) {
+            assertEquals(rootSpanId, outer.getParentSpanId());
+
+            try (RequestTracer.Span inner = requestTracer.startSpan("oauth.fetch")) {
+                assertEquals(outer.getSpanId(), inner.getParentSpanId());
+                assertEquals(inner.getSpanId(), requestTracer.traceparent().split("-")[2]);
+            }
+
+            // Closing the child makes the outer span current again
+            assertEquals(outer.getSpanId(), requestTracer.traceparent().split("-")[2]);
+        }
+
+        assertEquals(rootSpanId, requestTracer.traceparent().split("-")[2]);
+    }
+
+    @Test
+    public void testTraceparent_NoOpenSpanUsesRootSpan() {
+        requestTracer.startTrace(INCOMING_TRACEPARENT);
+
+        String rootSpanId = requestTracer.traceparent().split("-")[2];
+        assertEquals(rootSpanId, requestTracer.traceparent().split("-")[2]);
+        assertFalse("00f067aa0ba902b7".equals(rootSpanId));
+
+        try (RequestTracer.Span span = requestTracer.startSpan("filter.validate")) {
+            assertEquals(rootSpanId, span.getParentSpanId());
+        }
+    }
+
+    @Test
+    public void testMdc_SetDuringTraceAndClearedByEndTrace() {
+        requestTracer.startTrace(INCOMING_TRACEPARENT);
+        requestTracer.setCorrelationId("123456789");
+
+        assertEquals(INCOMING_TRACE_ID, MDC.get(RequestTracer.MDC_TRACE_ID));
+        assertEquals("123456789", MDC.get(RequestTracer.MDC_CORRELATION_ID));
+
+        requestTracer.endTrace();
+
+        assertNull(MDC.get(RequestTracer.MDC_TRACE_ID));
+        assertNull(MDC.get(RequestTracer.MDC_CORRELATION_ID));
+    }
+
+    @Test
+    public void testTraceparent_SentOnOAuthTokenRequest() {
+        RestTemplate restTemplate = mock(RestTemplate.class);
+        Map<String, String> body = new HashMap<>();
+        body.put("access_token", "newAccessToken");
+        body.put("expires_in", "300");
+        doReturn(ResponseEntity.ok(body)).when(restTemplate)
+                .exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), any(ParameterizedTypeReference.class));
+
+        OAuthenticationService oAuthenticationService = new OAuthenticationService();
+        ReflectionTestUtils.setField(oAuthenticationService, "authString", "clientId:clientSecret");
+        ReflectionTestUtils.setField(oAuthenticationService, "authUrl", "http://testAuthUrl.com");
+        ReflectionTestUtils.setField(oAuthenticationService, "restTemplate", restTemplate);
+        ReflectionTestUtils.setField(oAuthenticationService, "tokenCache", new TwoLevelTokenCache(new InMemorySharedTokenStore(), 30, 5, 100));
+        ReflectionTestUtils.setField(oAuthenticationService, "requestTracer", requestTracer);
+
+        requestTracer.startTrace(INCOMING_TRACEPARENT);
+        String rootSpanId = requestTracer.traceparent().split("-")[2];
+
+        assertEquals("newAccessToken", oAuthenticationService.getOathAccessToken());
+
+        ArgumentCaptor<HttpEntity> request = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(restTemplate).exchange(anyString(), eq(HttpMethod.POST), request.capture(), any(ParameterizedTypeReference.class));
+        String[] parts = request.getValue().getHeaders().getFirst(RequestTracer.TRACEPARENT).split("-");
+
+        // Same trace, parent is the oauth.token span rather than the root span
+        assertEquals(INCOMING_TRACE_ID, parts[1]);
+        assertFalse(rootSpanId.equals(parts[2]));
+    }
+
+    @Test
+    public void testTraceparent_InvalidHeaderStartsNewTrace() {
+        requestTracer.startTrace("not-a-traceparent");
+
+        String[] parts = requestTracer.traceparent().split("-");
+        assertEquals(32, parts[1].length());
+        assertFalse(INCOMING_TRACE_ID.equals(parts[1]));
+    }
+
+    @Test
+    public void testTraceparent_RejectsNonW3cHeaders() {
+        String[] invalid = {
+                "ff-" + INCOMING_TRACE_ID + "-00f067aa0ba902b7-01",
+                "00-" + INCOMING_TRACE_ID.toUpperCase() + "-00f067aa0ba902b7-01",
+                "00-" + INCOMING_TRACE_ID + "-00F067AA0BA902B7-01",
+                "00-00000000000000000000000000000000-00f067aa0ba902b7-01",
+                "00-" + INCOMING_TRACE_ID + "-0000000000000000-01",
+                "00-" + INCOMING_TRACE_ID + "-00f067aa0ba902b7-1",
+        };
+
+        for (String traceparent : invalid) {
+            requestTracer.startTrace(traceparent);
+            assertFalse(traceparent, INCOMING_TRACE_ID.equals(requestTracer.traceparent().split("-")[1]));
+            requestTracer.endTrace();
+        }
+    }
+
+    @Test
+    public void testTraceparent_CarriesIncomingFlags() {
+        requestTracer.startTrace("00-" + INCOMING_TRACE_ID + "-00f067aa0ba902b7-00");
+
+        assertTrue(requestTracer.traceparent().endsWith("-00"));
+    }
+
+    @Test
+    public void testTraceparent_GeneratedIdsAreLowercaseHex() {
+        for (int i = 0; i < 100; i++) {
+            requestTracer.startTrace(null);
+            try (RequestTracer.Span span = requestTracer.startSpan("eai.call")) {
+                assertTrue(requestTracer.traceparent().matches("^00-[0-9a-f]{32}-[0-9a-f]{16}-01$"));
+            }
+            requestTracer.endTrace();
+        }
+    }
+
+    @Test
+    public void testTraceparent_NoActiveTrace() {
+        assertNull(requestTracer.traceparent());
+
+        // Spans outside a request are no-ops
+        try (RequestTracer.Span span = requestTracer.startSpan("eai.call")) {
+            span.setError(new RuntimeException("ignored"));
+        }
+        assertFalse(requestTracer.endTrace());
+    }
+
+    @Test
+    public void testEndTrace_FastTraceIsDropped() {
+        requestTracer.startTrace(null);
+        try (RequestTracer.Span span = requestTracer.startSpan("filter.validate")) {
+            requestTracer.setCorrelationId("123456789");
+        }
+
+        assertFalse(requestTracer.endTrace());
+    }
+
+    @Test
+    public void testEndTrace_SlowTraceIsExported() {
+        requestTracer = new RequestTracer(0);
+        requestTracer.startTrace(INCOMING_TRACEPARENT);
+        try (RequestTracer.Span span = requestTracer.startSpan("eai.call")) {
+            requestTracer.setCorrelationId("123456789");
+        }
+
+        assertTrue(requestTracer.endTrace());
+    }
+
+    @Test
+    public void testEndTrace_FailedTraceIsExported() {
+        requestTracer.startTrace(null);
+        try (RequestTracer.Span span = requestTracer.startSpan("oauth.token")) {
+            span.setError(new RuntimeException("Access token key is missing in the response"));
+        }
+
+        assertTrue(requestTracer.endTrace());
+    }
+}
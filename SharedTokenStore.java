@@ -0,0 +1,30 @@
+/*
+ * Shared (cross-node) tier behind TwoLevelTokenCache.
+ * Every replica talks to the same store, so a token fetched or revoked on one node is seen by all of them.
+ * RedisSharedTokenStore is the production implementation, InMemorySharedTokenStore is the stand-in for tests.
+ */
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+public interface SharedTokenStore {
+
+    String get(String key);
+
+    // Remaining time to live of the key, Duration.ZERO if the key is missing or has no expiry
+    Duration ttl(String key);
+
+    void set(String key, String value, Duration ttl);
+
+    // Used as a cross-node lock, returns true only for the caller that created the key
+    boolean setIfAbsent(String key, String value, Duration ttl);
+
+    void delete(String key);
+
+    // Deletes the key only if it still holds the expected value, used to release a lock we own
+    boolean deleteIfEquals(String key, String expectedValue);
+
+    void publish(String channel, String message);
+
+    void subscribe(String channel, Consumer<String> listener);
+}
@@ -0,0 +1,311 @@
+/*
+ * Two level cache for tokens and Ping introspection results shared by all replicas.
+ * Lookups go to an in-process near cache first, then to the SharedTokenStore (Redis), and only then to the loader.
+ * Only one node loads a missing key at a time (cross-node lock in the shared store), the others wait for its result.
+ * invalidate() removes a key everywhere and tells the other nodes over pub/sub to drop their near cache entry.
+ * The shared tier is best effort: if Redis is unavailable, lookups fall back to the near cache and the loader.
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+@Component
+public class TwoLevelTokenCache {
+
+    public static final String INVALIDATION_CHANNEL = "token-cache:invalidate";
+    private static final String LOCK_SUFFIX = ":lock";
+    private static final long LOCK_POLL_MILLIS = 50;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TwoLevelTokenCache.class);
+
+    private final SharedTokenStore sharedStore;
+    private final Duration nearTtl;
+    private final Duration lockTtl;
+    private final int nearMaxEntries;
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final Map<String, Entry> nearCache = new ConcurrentHashMap<>();
+    private final Map<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+    public TwoLevelTokenCache(SharedTokenStore sharedStore,
+                              @Value("${application.config.tokencache.nearttlseconds:30}") long nearTtlSeconds,
+                              @Value("${application.config.tokencache.lockttlseconds:10}") long lockTtlSeconds,
+                              @Value("${application.config.tokencache.nearmaxentries:10000}") int nearMaxEntries) {
+        this.sharedStore = sharedStore;
+        this.nearTtl = Duration.ofSeconds(nearTtlSeconds);
+        this.lockTtl = Duration.ofSeconds(lockTtlSeconds);
+        this.nearMaxEntries = nearMaxEntries;
+        this.sharedStore.subscribe(INVALIDATION_CHANNEL, this::evictLocally);
+    }
+
+    public String get(String key, Supplier<Entry> loader) {
+        Entry cached = getFromNearCache(key);
+        if (cached != null) {
+            return cached.getValue();
+        }
+
+        // Only one thread per node goes to the shared store / loader for a given key, the others wait for its result
+        Flight flight = new Flight();
+        Flight running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            return running.await().getValue();
+        }
+
+        try {
+            cached = getFromNearCache(key);
+            if (cached == null) {
+                cached = getFromSharedStore(key, flight);
+            }
+            if (cached == null) {
+                cached = loadAcrossNodes(key, loader, flight);
+            }
+            flight.result.complete(cached);
+            return cached.getValue();
+        } catch (RuntimeException | Error e) {
+            flight.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            // Waiters already hold this flight, so removing it only stops new threads from joining it
+            inFlight.remove(key, flight);
+        }
+    }
+
+    public void invalidate(String key) {
+        evictLocally(key);
+        try {
+            sharedStore.delete(key);
+            sharedStore.publish(INVALIDATION_CHANNEL, key);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Shared token store unavailable, invalidated {} on this node only", key, e);
+        }
+        LOGGER.info("Invalidated token cache key {}", key);
+    }
+
+    // Invalidates the key only if it still holds the given value, so a value that was already replaced stays cached
+    public boolean invalidateIfEquals(String key, String expectedValue) {
+        Entry near = nearCache.get(key);
+        if (near != null && expectedValue.equals(near.getValue())) {
+            nearCache.remove(key, near);
+        }
+
+        boolean deleted;
+        try {
+            deleted = sharedStore.deleteIfEquals(key, expectedValue);
+            if (deleted) {
+                sharedStore.publish(INVALIDATION_CHANNEL, key);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Shared token store unavailable, invalidated {} on this node only", key, e);
+            return false;
+        }
+
+        if (deleted) {
+            LOGGER.info("Invalidated token cache key {}", key);
+        }
+        return deleted;
+    }
+
+    private void evictLocally(String key) {
+        // A load that started before the invalidation must not write the revoked value back
+        Flight flight = inFlight.get(key);
+        if (flight != null) {
+            flight.invalidated = true;
+        }
+        nearCache.remove(key);
+    }
+
+    private Entry loadAcrossNodes(String key, Supplier<Entry> loader, Flight flight) {
+        String lockKey = key + LOCK_SUFFIX;
+        Instant deadline = Instant.now().plus(lockTtl);
+
+        while (true) {
+            boolean locked;
+            try {
+                locked = sharedStore.setIfAbsent(lockKey, nodeId, lockTtl);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Shared token store unavailable, loading {} without the cross-node lock", key, e);
+                return load(key, loader, flight);
+            }
+
+            if (locked) {
+                try {
+                    return load(key, loader, flight);
+                } finally {
+                    releaseLock(lockKey);
+                }
+            }
+
+            if (!Instant.now().isBefore(deadline)) {
+                break;
+            }
+
+            // Another node is loading this key, wait for it to publish the value or give up the lock.
+            // If its load fails or is not cacheable the lock goes away without a value, and we load ourselves.
+            try {
+                Thread.sleep(LOCK_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            Entry cached = getFromSharedStore(key, flight);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        LOGGER.info("Timed out waiting for another node to load {}, loading locally", key);
+        return load(key, loader, flight);
+    }
+
+    private void releaseLock(String lockKey) {
+        try {
+            // Only release our own lock, it may have expired and been taken by another node meanwhile
+            sharedStore.deleteIfEquals(lockKey, nodeId);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Shared token store unavailable, lock {} is left to expire", lockKey, e);
+        }
+    }
+
+    private Entry load(String key, Supplier<Entry> loader, Flight flight) {
+        Entry loaded = loader.get();
+        if (flight.invalidated) {
+            LOGGER.info("Token cache key {} was invalidated while loading, not caching the result", key);
+        } else if (!loaded.getTtl().isNegative() && !loaded.getTtl().isZero()) {
+            putInSharedStore(key, loaded);
+            putInNearCache(key, loaded.getValue(), loaded.getTtl(), flight);
+            if (flight.invalidated) {
+                // Invalidated between the check and the write, undo the write
+                nearCache.remove(key);
+                deleteFromSharedStore(key);
+            }
+        }
+        return loaded;
+    }
+
+    private Entry getFromNearCache(String key) {
+        Entry cached = nearCache.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.isExpired()) {
+            nearCache.remove(key, cached);
+            return null;
+        }
+        return cached;
+    }
+
+    private Entry getFromSharedStore(String key, Flight flight) {
+        String value;
+        Duration remaining;
+        try {
+            value = sharedStore.get(key);
+            if (value == null) {
+                return null;
+            }
+            remaining = sharedStore.ttl(key);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Shared token store unavailable, treating {} as a miss", key, e);
+            return null;
+        }
+        putInNearCache(key, value, remaining, flight);
+        return Entry.of(value, remaining);
+    }
+
+    private void putInSharedStore(String key, Entry entry) {
+        try {
+            sharedStore.set(key, entry.getValue(), entry.getTtl());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Shared token store unavailable, {} is cached on this node only", key, e);
+        }
+    }
+
+    private void deleteFromSharedStore(String key) {
+        try {
+            sharedStore.delete(key);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Shared token store unavailable, could not delete {}", key, e);
+        }
+    }
+
+    private void putInNearCache(String key, String value, Duration ttl, Flight flight) {
+        // Near entries never outlive the shared entry, and are capped so revocations missed over pub/sub heal quickly
+        Duration effectiveTtl = ttl.compareTo(nearTtl) < 0 ? ttl : nearTtl;
+        if (flight.invalidated || effectiveTtl.isNegative() || effectiveTtl.isZero()) {
+            return;
+        }
+
+        // Ping entries are keyed per bearer token, so expired entries are swept and the near cache is bounded.
+        // When it is still full the value is only kept in the shared store.
+        if (nearCache.size() >= nearMaxEntries) {
+            nearCache.values().removeIf(Entry::isExpired);
+            if (nearCache.size() >= nearMaxEntries) {
+                return;
+            }
+        }
+        nearCache.put(key, Entry.of(value, effectiveTtl));
+    }
+
+    int nearCacheSize() {
+        return nearCache.size();
+    }
+
+    // One in-progress lookup of a key on this node
+    private static final class Flight {
+        private final CompletableFuture<Entry> result = new CompletableFuture<>();
+        private volatile boolean invalidated;
+
+        Entry await() {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    // Cached value together with how long it may be kept
+    public static final class Entry {
+        private final String value;
+        private final Duration ttl;
+        private final Instant expiresAt;
+
+        private Entry(String value, Duration ttl) {
+            this.value = value;
+            this.ttl = ttl;
+            this.expiresAt = Instant.now().plus(ttl);
+        }
+
+        public static Entry of(String value, Duration ttl) {
+            return new Entry(value, ttl);
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public Duration getTtl() {
+            return ttl;
+        }
+
+        boolean isExpired() {
+            return !Instant.now().isBefore(expiresAt);
+        }
+    }
+}
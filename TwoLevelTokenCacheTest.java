@@ -0,0 +1,286 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TwoLevelTokenCacheTest {
+
+    private InMemorySharedTokenStore sharedStore;
+
+    // Two caches on the same shared store act like two replicas sharing one Redis
+    private TwoLevelTokenCache node1;
+    private TwoLevelTokenCache node2;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        sharedStore = new InMemorySharedTokenStore();
+        node1 = new TwoLevelTokenCache(sharedStore, 30, 5, 100);
+        node2 = new TwoLevelTokenCache(sharedStore, 30, 5, 100);
+    }
+
+    private TwoLevelTokenCache.Entry loadToken() {
+        return TwoLevelTokenCache.Entry.of("token-" + loads.incrementAndGet(), Duration.ofSeconds(300));
+    }
+
+    @Test
+    public void testGet_LoadedOnceAcrossNodes() {
+        assertEquals("token-1", node1.get("oauth:access_token", this::loadToken));
+        assertEquals("token-1", node1.get("oauth:access_token", this::loadToken));
+        assertEquals("token-1", node2.get("oauth:access_token", this::loadToken));
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testInvalidate_EvictsOtherNodes() {
+        node1.get("oauth:access_token", this::loadToken);
+        node2.get("oauth:access_token", this::loadToken);
+
+        node1.invalidate("oauth:access_token");
+
+        // node2 had the token in its near cache, pub/sub must have removed it
+        assertEquals("token-2", node2.get("oauth:access_token", this::loadToken));
+        assertEquals("token-2", node1.get("oauth:access_token", this::loadToken));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testGet_ZeroTtlIsNotCached() {
+        node1.get("ping:abc", () -> TwoLevelTokenCache.Entry.of("response", Duration.ZERO));
+        node1.get("ping:abc", () -> TwoLevelTokenCache.Entry.of("response", Duration.ZERO));
+
+        assertNull(sharedStore.get("ping:abc"));
+    }
+
+    @Test
+    public void testInvalidate_DuringLoadIsNotWrittenBack() {
+        String value = node1.get("oauth:access_token", () -> {
+            // Revoked on another node while this node is still talking to the auth service
+            node2.invalidate("oauth:access_token");
+            return loadToken();
+        });
+
+        assertEquals("token-1", value);
+        assertNull(sharedStore.get("oauth:access_token"));
+        assertEquals("token-2", node1.get("oauth:access_token", this::loadToken));
+    }
+
+    @Test
+    public void testDeleteIfEquals_KeepsOtherOwnersLock() {
+        sharedStore.setIfAbsent("oauth:access_token:lock", "other-node", Duration.ofSeconds(5));
+
+        assertFalse(sharedStore.deleteIfEquals("oauth:access_token:lock", "this-node"));
+        assertEquals("other-node", sharedStore.get("oauth:access_token:lock"));
+        assertTrue(sharedStore.deleteIfEquals("oauth:access_token:lock", "other-node"));
+    }
+
+    @Test
+    public void testGet_ConcurrentMissesLoadOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            TwoLevelTokenCache node = i % 2 == 0 ? node1 : node2;
+            results.add(executor.submit(() -> {
+                start.await();
+                return node.get("oauth:access_token", () -> {
+                    sleepQuietly(200);
+                    return loadToken();
+                });
+            }));
+        }
+
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        for (Future<String> result : results) {
+            assertEquals("token-1", result.get());
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testGet_ConcurrentMissesShareUncachedLoad() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<>();
+
+        // Zero TTL is never cached, so only single-flight on the node keeps this to one load
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return node1.get("ping:abc", () -> {
+                    sleepQuietly(200);
+                    loads.incrementAndGet();
+                    return TwoLevelTokenCache.Entry.of("response", Duration.ZERO);
+                });
+            }));
+        }
+
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        for (Future<String> result : results) {
+            assertEquals("response", result.get());
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testGet_LockHolderFailureDoesNotStallOtherNode() throws Exception {
+        assertOtherNodeLoadsPromptly(() -> {
+            throw new IllegalStateException("Ping service is down");
+        });
+    }
+
+    @Test
+    public void testGet_LockHolderUncacheableResultDoesNotStallOtherNode() throws Exception {
+        assertOtherNodeLoadsPromptly(() -> TwoLevelTokenCache.Entry.of("rejected", Duration.ZERO));
+    }
+
+    // node1 holds the cross-node lock and its load writes nothing to the shared store,
+    // node2 must load as soon as the lock is released instead of waiting the full lock TTL (5s)
+    private void assertOtherNodeLoadsPromptly(Supplier<TwoLevelTokenCache.Entry> failingLoad) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch loading = new CountDownLatch(1);
+        Future<String> lockHolder = executor.submit(() -> node1.get("ping:abc", () -> {
+            loading.countDown();
+            sleepQuietly(300);
+            return failingLoad.get();
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        assertEquals("token-1", node2.get("ping:abc", this::loadToken));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("node2 waited " + elapsedMillis + "ms", elapsedMillis < 2000);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        try {
+            lockHolder.get();
+        } catch (ExecutionException expected) {
+            // the throwing loader fails node1's lookup
+        }
+    }
+
+    @Test
+    public void testGet_SharedStoreDownFallsBackToLoader() {
+        TwoLevelTokenCache node = new TwoLevelTokenCache(new UnavailableSharedTokenStore(), 30, 5, 100);
+
+        assertEquals("token-1", node.get("oauth:access_token", this::loadToken));
+        // Served from the near cache, the auth service is not called again
+        assertEquals("token-1", node.get("oauth:access_token", this::loadToken));
+        assertEquals(1, loads.get());
+
+        node.invalidate("oauth:access_token");
+        assertFalse(node.invalidateIfEquals("oauth:access_token", "token-1"));
+        assertEquals("token-2", node.get("oauth:access_token", this::loadToken));
+    }
+
+    @Test
+    public void testNearCache_BoundedAndSweepsExpired() {
+        TwoLevelTokenCache node = new TwoLevelTokenCache(sharedStore, 30, 5, 2);
+
+        node.get("ping:a", () -> TwoLevelTokenCache.Entry.of("a", Duration.ofMillis(50)));
+        node.get("ping:b", () -> TwoLevelTokenCache.Entry.of("b", Duration.ofMillis(50)));
+        node.get("ping:c", () -> TwoLevelTokenCache.Entry.of("c", Duration.ofSeconds(60)));
+        assertEquals(2, node.nearCacheSize());
+
+        sleepQuietly(100);
+        node.get("ping:d", () -> TwoLevelTokenCache.Entry.of("d", Duration.ofSeconds(60)));
+
+        // Expired a and b were swept to make room for d
+        assertEquals(1, node.nearCacheSize());
+    }
+
+    @Test
+    public void testInvalidateIfEquals_KeepsReplacedValue() {
+        node1.get("oauth:access_token", this::loadToken);
+        node2.get("oauth:access_token", this::loadToken);
+        assertTrue(node1.invalidateIfEquals("oauth:access_token", "token-1"));
+
+        assertEquals("token-2", node1.get("oauth:access_token", this::loadToken));
+        // A late 401 for the old token must not throw away the new one, on any node
+        assertFalse(node2.invalidateIfEquals("oauth:access_token", "token-1"));
+        assertEquals("token-2", node2.get("oauth:access_token", this::loadToken));
+        assertEquals("token-2", sharedStore.get("oauth:access_token"));
+        assertEquals(2, loads.get());
+    }
+
+    // Behaves like Redis being unreachable
+    private static class UnavailableSharedTokenStore implements SharedTokenStore {
+
+        private static IllegalStateException down() {
+            return new IllegalStateException("Redis is unavailable");
+        }
+
+        @Override
+        public String get(String key) {
+            throw down();
+        }
+
+        @Override
+        public Duration ttl(String key) {
+            throw down();
+        }
+
+        @Override
+        public void set(String key, String value, Duration ttl) {
+            throw down();
+        }
+
+        @Override
+        public boolean setIfAbsent(String key, String value, Duration ttl) {
+            throw down();
+        }
+
+        @Override
+        public void delete(String key) {
+            throw down();
+        }
+
+        @Override
+        public boolean deleteIfEquals(String key, String expectedValue) {
+            throw down();
+        }
+
+        @Override
+        public void publish(String channel, String message) {
+            throw down();
+        }
+
+        @Override
+        public void subscribe(String channel, Consumer<String> listener) {
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}